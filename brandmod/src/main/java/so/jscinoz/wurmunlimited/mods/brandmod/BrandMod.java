@@ -1,5 +1,6 @@
 package so.jscinoz.wurmunlimited.mods.brandmod;
 
+import java.io.IOException;
 import java.lang.FunctionalInterface;
 import java.util.List;
 import java.util.ArrayList;
@@ -7,10 +8,12 @@ import java.util.Arrays;
 import java.util.logging.Logger;
 import java.util.function.BiPredicate;
 import java.util.function.Predicate;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.gotti.wurmunlimited.modloader.classhooks.HookManager;
 import org.gotti.wurmunlimited.modloader.classhooks.HookException;
+import org.gotti.wurmunlimited.modloader.interfaces.ServerStartedListener;
 import org.gotti.wurmunlimited.modloader.interfaces.WurmServerMod;
 import org.gotti.wurmunlimited.modloader.interfaces.PreInitable;
 
@@ -28,6 +31,8 @@ import javassist.expr.ExprEditor;
 import javassist.expr.MethodCall;
 
 import so.jscinoz.wurmunlimited.mods.common.BaseMod;
+import so.jscinoz.wurmunlimited.mods.common.PatchSite;
+import so.jscinoz.wurmunlimited.mods.common.ReplacementTemplate;
 
 import static java.util.logging.Level.INFO;
 import static javassist.bytecode.Opcode.ALOAD;
@@ -37,7 +42,8 @@ import static javassist.bytecode.Opcode.INVOKESTATIC;
 import static javassist.bytecode.Opcode.INVOKEVIRTUAL;
 import static javassist.bytecode.Opcode.SIPUSH;
 
-public class BrandMod extends BaseMod implements WurmServerMod, PreInitable {
+public class BrandMod extends BaseMod
+    implements WurmServerMod, PreInitable, ServerStartedListener {
   // Default test for replacing a MethodCall with ExprEditor - simply checks
   // that the target MethodCall is for Servers.isThisAPvpServer
   private static final Predicate<MethodCall> DEFAULT_PREDICATE = m -> {
@@ -45,12 +51,40 @@ public class BrandMod extends BaseMod implements WurmServerMod, PreInitable {
            m.getClassName().equals(Wurm.Class.Servers);
   };
 
+  private static final ReplacementTemplate REPLACEMENT_FALSE =
+    ReplacementTemplate.constant(false);
+
   // Default patcher to strip the pvp check once in a method
   private final MethodPatcher DEFAULT_METHOD_PATCHER =
     targetMethod -> stripPvpCheck(targetMethod);
 
+  // Sites within the methods that need more than the default patch
+  private final Future<PatchSite> cbAddVehicleOptionsSite;
+  private final Future<PatchSite> cbActionSite;
+  private final Future<PatchSite> communicatorSite;
+
   public BrandMod() {
     super(Logger.getLogger(BrandMod.class.getName()));
+
+    ClassPool pool = HookManager.getInstance().getClassPool();
+
+    enlistForPatching(pool);
+
+    // Index the server jar and find what to patch while the rest of the server
+    // starts up, ready for preInit
+    indexJarInBackground(pool, Wurm.Class.Servers);
+
+    cbAddVehicleOptionsSite = resolveInBackground(
+      pool, Wurm.Class.CreatureBehaviour, "addVehicleOptions", null,
+      CB_ADD_VEHICLE_OPTIONS_RESOLVER);
+
+    cbActionSite = resolveInBackground(
+      pool, Wurm.Class.CreatureBehaviour, Wurm.Method.action, null,
+      CB_ACTION_RESOLVER);
+
+    communicatorSite = resolveInBackground(
+      pool, Wurm.Class.Communicator, "reallyHandle_CMD_MOVE_INVENTORY", null,
+      COMMUNICATOR_RESOLVER);
   }
 
   // Replaces all Servers.isThisAPvpServer MethodCalls that match the given
@@ -68,7 +102,7 @@ public class BrandMod extends BaseMod implements WurmServerMod, PreInitable {
       (m, check) -> {
         if (p.test(m)) {
           // Replace call to Servers.isThisAPvpServer with literal false
-          m.replace("$_ = false;");
+          REPLACEMENT_FALSE.apply(m);
 
           check.didPatch();
         }
@@ -99,18 +133,20 @@ public class BrandMod extends BaseMod implements WurmServerMod, PreInitable {
     stripPvpCheck(method, 1, DEFAULT_PREDICATE);
   }
 
-  // Patches CreatureBehaviour.addVehicleOptions. Like the other method in
-  // CreatureBehaviour, it's huge and contains logic for many vehicle options,
-  // not just those related to animals / branding, so we don't want to blindly
-  // strip all Servers.isThisAPvpServer checks. Our strategy here is to find
-  // where the (initially unreachble, when pvp = true) action id for
-  // MANAGE_ANIMAL is pushed into the stack, then find the nearest preceeding
-  // INVOKESTATIC for isThisAPvpServer
-  private final ClassPatcher patchCBAddVehicleOptions = targetClass -> {
-    CtMethod targetMethod =
-      targetClass.getDeclaredMethods("addVehicleOptions")[0];
-
-    final int actionAddPos = searchForInstruction(targetMethod, (ci, cp) -> {
+  // Matches the Servers.isThisAPvpServer calls at the given site
+  private static Predicate<MethodCall> atSite(PatchSite site) {
+    return DEFAULT_PREDICATE.and(m -> site.contains(m.indexOfBytecode()));
+  }
+
+  // Resolves the patch site for CreatureBehaviour.addVehicleOptions. Like the
+  // other method in CreatureBehaviour, it's huge and contains logic for many
+  // vehicle options, not just those related to animals / branding, so we don't
+  // want to blindly strip all Servers.isThisAPvpServer checks. Our strategy
+  // here is to find where the (initially unreachble, when pvp = true) action id
+  // for MANAGE_ANIMAL is pushed into the stack, then find the nearest
+  // preceeding INVOKESTATIC for isThisAPvpServer
+  private static final SiteResolver CB_ADD_VEHICLE_OPTIONS_RESOLVER = mi -> {
+    final int actionAddPos = searchForInstruction(mi, (ci, cp) -> {
       while (ci.hasNext()) {
         int pos = ci.next();
         int op = ci.byteAt(pos);
@@ -129,7 +165,7 @@ public class BrandMod extends BaseMod implements WurmServerMod, PreInitable {
     });
 
     final int targetPos =
-    findNearestPreceding(targetMethod, actionAddPos, (ci, cp) -> {
+    findNearestPreceding(mi, actionAddPos, (ci, cp) -> {
       int pos = ci.next();
       int op = ci.byteAt(pos);
 
@@ -145,23 +181,17 @@ public class BrandMod extends BaseMod implements WurmServerMod, PreInitable {
       return -1;
     });
 
-    stripPvpCheck(
-      targetMethod,
-      DEFAULT_PREDICATE.and(m -> m.indexOfBytecode() == targetPos)
-    );
+    return Arrays.asList(targetPos);
   };
 
-  // Patches CreatureBehaviour.action. This method contains a HUGE switch
-  // statement for all the possible actions in the game.  We only watch to patch
-  // the Servers.isThisAPvpServer check within the branch for MANAGE_ACTION.
-  // Conveniently, the INVOKESTATIC for isThisAPvpServer is the first
-  // instruction in that branch, so finding the instruction pointed to by the
-  // LOOKUPSWITCH for MANAGE_ANIMAL is sufficient.
-  private final ClassPatcher patchCBAction = targetClass -> {
-    CtMethod targetMethod =
-      targetClass.getDeclaredMethods("action")[0];
-
-    final int targetPos = searchForInstruction(targetMethod, (ci, cp) -> {
+  // Resolves the patch site for CreatureBehaviour.action. This method contains
+  // a HUGE switch statement for all the possible actions in the game.  We only
+  // watch to patch the Servers.isThisAPvpServer check within the branch for
+  // MANAGE_ACTION. Conveniently, the INVOKESTATIC for isThisAPvpServer is the
+  // first instruction in that branch, so finding the instruction pointed to by
+  // the LOOKUPSWITCH for MANAGE_ANIMAL is sufficient.
+  private static final SiteResolver CB_ACTION_RESOLVER = mi -> {
+    final int targetPos = searchForInstruction(mi, (ci, cp) -> {
       while (ci.hasNext()) {
         int pos = ci.next();
         int op = ci.byteAt(pos);
@@ -192,32 +222,11 @@ public class BrandMod extends BaseMod implements WurmServerMod, PreInitable {
       throw new NotFoundException("Could not find target instruction");
     });
 
-    stripPvpCheck(
-      targetMethod,
-      DEFAULT_PREDICATE.and(m -> m.indexOfBytecode() == targetPos)
-    );
+    return Arrays.asList(targetPos);
   };
 
-  // Need to do something a bit more complicated for this class, as we only want
-  // to strip only some of the pvp checks within each method we patch
-  private void patchCreatureBehaviour(ClassPool pool)
-      throws BadBytecode, CannotCompileException, NotFoundException {
-    CtClass targetClass = pool.get(Wurm.Class.CreatureBehaviour);
-
-    patchClass(pool, targetClass, patchCBAddVehicleOptions, patchCBAction);
-  }
-
-  // Patches the reallyHandle_CMD_MOVE_INVENTORY method of the Communicator
-  // class. This method is rather huge and we don't want to blindly strip every
-  // Servers.isThisAPvpServer check from its body; only those related to animal
-  // brands. This is done by finding all INVOKESTATIC isThisAPvpServer
-  // instructions that are followed, in order, by IFNE, ALOAD, and an
-  // INVOKEVIRTUAL for isBranded
-  private void patchCommunicator(ClassPool pool)
-      throws BadBytecode, CannotCompileException, NotFoundException {
-    String className = Wurm.Class.Communicator;
-
-    final List<LookaheadPredicate> sequence = Arrays.asList(
+  private static final List<LookaheadPredicate> MOVE_INVENTORY_SEQUENCE =
+    Arrays.asList(
       (op, methodName) ->
         op == INVOKESTATIC && methodName.equals(Wurm.Method.isThisAPvpServer),
       (op, methodName) ->
@@ -228,20 +237,60 @@ public class BrandMod extends BaseMod implements WurmServerMod, PreInitable {
         op == INVOKEVIRTUAL && methodName.equals(Wurm.Method.isBranded)
     );
 
-    patchClassMethods(pool, targetMethod -> {
-      stripPvpCheck(targetMethod, 2, DEFAULT_PREDICATE.and(m -> {
-        try {
-          List<Integer> targets =
-          searchForInstructions(targetMethod, (ci, cp) -> {
-            return findSequence(ci, cp, sequence);
-          });
-
-          return targets.contains(m.indexOfBytecode());
-        } catch (NotFoundException | BadBytecode e) {
-          return false;
-        }
-      }));
-    }, className, "reallyHandle_CMD_MOVE_INVENTORY");
+  // Resolves the patch sites for the reallyHandle_CMD_MOVE_INVENTORY method of
+  // the Communicator class. This method is rather huge and we don't want to
+  // blindly strip every Servers.isThisAPvpServer check from its body; only
+  // those related to animal brands. This is done by finding all INVOKESTATIC
+  // isThisAPvpServer instructions that are followed, in order, by IFNE, ALOAD,
+  // and an INVOKEVIRTUAL for isBranded
+  private static final SiteResolver COMMUNICATOR_RESOLVER = mi -> {
+    return searchForInstructions(mi, (ci, cp) -> {
+      return findSequence(ci, cp, MOVE_INVENTORY_SEQUENCE);
+    });
+  };
+
+  // Claims the Servers.isThisAPvpServer call sites within the given methods
+  private void claimPvpChecks(
+      ClassPool pool, String className, String... methodNames)
+      throws IOException, NotFoundException {
+    for (String methodName : methodNames) {
+      claimCallSite(pool, className, methodName, Wurm.Method.isThisAPvpServer);
+    }
+  }
+
+  // Registers the default patch, stripping a single pvp check, for each of the
+  // given methods
+  private void registerPvpCheckPatches(
+      ClassPool pool, String className, String... methodNames)
+      throws IOException, NotFoundException {
+    claimPvpChecks(pool, className, methodNames);
+    registerPatches(
+      pool, className, forMethods(DEFAULT_METHOD_PATCHER, methodNames));
+  }
+
+  // Need to do something a bit more complicated for this class, as we only want
+  // to strip only some of the pvp checks within each method we patch
+  private void registerCreatureBehaviourPatches(ClassPool pool)
+      throws IOException, NotFoundException {
+    String className = Wurm.Class.CreatureBehaviour;
+
+    claimPvpChecks(pool, className, "addVehicleOptions", Wurm.Method.action);
+    registerPatches(pool, className, forSites(
+      (targetMethod, site) -> stripPvpCheck(targetMethod, atSite(site)),
+      joinAnalysis(cbAddVehicleOptionsSite), joinAnalysis(cbActionSite)));
+  }
+
+  // Registers the patch for the reallyHandle_CMD_MOVE_INVENTORY method of the
+  // Communicator class, stripping the two brand-related pvp checks found by
+  // COMMUNICATOR_RESOLVER
+  private void registerCommunicatorPatches(ClassPool pool)
+      throws IOException, NotFoundException {
+    String className = Wurm.Class.Communicator;
+
+    claimPvpChecks(pool, className, "reallyHandle_CMD_MOVE_INVENTORY");
+    registerPatches(pool, className, forSites(
+      (targetMethod, site) -> stripPvpCheck(targetMethod, 2, atSite(site)),
+      joinAnalysis(communicatorSite)));
   }
 
   @Override
@@ -251,30 +300,41 @@ public class BrandMod extends BaseMod implements WurmServerMod, PreInitable {
     try {
       logger.log(INFO, "Enabling PVP server animal permission management");
 
-      patchClassMethods(
-        pool, DEFAULT_METHOD_PATCHER,
-        Wurm.Class.Brand, Wurm.Method.addInitialPermissions);
+      mapJarOf(pool, Wurm.Class.Servers);
+
+      auditCallSites(
+        pool, getCallSiteIndex(pool),
+        Wurm.Method.isThisAPvpServer, Wurm.Method.isBranded);
 
-      patchClassMethods(
-        pool, DEFAULT_METHOD_PATCHER,
-        Wurm.Class.Creature, Wurm.Method.canHavePermissions);
+      registerPvpCheckPatches(
+        pool, Wurm.Class.Brand, Wurm.Method.addInitialPermissions);
 
-      patchClassMethods(
-        pool, DEFAULT_METHOD_PATCHER,
-        Wurm.Class.Creatures, Wurm.Method.getManagedAnimalsFor);
+      registerPvpCheckPatches(
+        pool, Wurm.Class.Creature, Wurm.Method.canHavePermissions);
 
-      patchClassMethods(
-        pool, DEFAULT_METHOD_PATCHER, Wurm.Class.ManageMenu,
+      registerPvpCheckPatches(
+        pool, Wurm.Class.Creatures, Wurm.Method.getManagedAnimalsFor);
+
+      registerPvpCheckPatches(
+        pool, Wurm.Class.ManageMenu,
         Wurm.Method.getBehavioursFor, Wurm.Method.action);
 
-      patchCreatureBehaviour(pool);
-      patchCommunicator(pool);
+      registerCreatureBehaviourPatches(pool);
+      registerCommunicatorPatches(pool);
+
+      // Patches are applied here if this is the last mod to get this far,
+      // otherwise in the preInit of whichever mod is
+      applyPatches(pool);
 
-      logger.log(
-        INFO, "Successfully enabled PVP server animal permission management");
+      logger.log(INFO, "Successfully enabled PVP server animal permission management");
     } catch (Exception e) {
       // TODO: Handle properly
       throw new HookException(e);
     }
   }
+
+  @Override
+  public void onServerStarted() {
+    verifyPatches(HookManager.getInstance().getClassPool());
+  }
 }
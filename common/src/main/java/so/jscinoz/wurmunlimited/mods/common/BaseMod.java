@@ -1,7 +1,20 @@
 package so.jscinoz.wurmunlimited.mods.common;
 
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.function.BiPredicate;
 import java.util.function.Predicate;
 import java.util.logging.Logger;
@@ -19,7 +32,9 @@ import javassist.NotFoundException;
 import javassist.expr.ExprEditor;
 import javassist.expr.MethodCall;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
 import static javassist.bytecode.Opcode.INVOKESTATIC;
 import static javassist.bytecode.Opcode.INVOKEVIRTUAL;
 
@@ -31,15 +46,123 @@ public abstract class BaseMod {
 
   protected final Logger logger;
 
+  // Class whose jar this mod asked to have indexed, if any
+  private String indexedClass;
+
   protected BaseMod(Logger logger) {
     this.logger = logger;
   }
 
+  // Runs the given analysis on a background thread, returning immediately.
+  // Intended to be started from a mod's constructor or configure, and joined in
+  // preInit, so that the analysis overlaps with the rest of startup. The
+  // analysis must not modify anything in the ClassPool.
+  protected static <T> Future<T> analyzeInBackground(
+      String name, Callable<T> analysis) {
+    FutureTask<T> task = new FutureTask<>(analysis);
+    Thread thread = new Thread(task, name);
+
+    thread.setDaemon(true);
+    thread.start();
+
+    return task;
+  }
+
+  // Waits for the result of a background analysis
+  protected static <T> T joinAnalysis(Future<T> analysis)
+      throws IOException, NotFoundException {
+    try {
+      return analysis.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof NotFoundException) {
+        throw (NotFoundException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+
+      throw new IOException(cause);
+    }
+  }
+
+  // Starts building a CallSiteIndex of the jar the given class would be loaded
+  // from in the background, unless another mod sharing the pool already has.
+  // The jar itself is located immediately, so the background thread never
+  // touches the ClassPool.
+  protected void indexJarInBackground(ClassPool pool, String className) {
+    indexedClass = className;
+
+    try {
+      PatchCoordinator.forPool(pool).startIndexing(findJarOf(pool, className));
+    } catch (IOException | NotFoundException e) {
+      // Thrown again when the index is asked for
+    }
+  }
+
+  // Returns the CallSiteIndex started by indexJarInBackground, waiting for it to
+  // finish building if needed. Only available until patches are applied.
+  protected CallSiteIndex getCallSiteIndex(ClassPool pool)
+      throws IOException, NotFoundException {
+    if (indexedClass == null) {
+      throw new IllegalStateException("indexJarInBackground was not called");
+    }
+
+    return PatchCoordinator.forPool(pool)
+      .getIndex(findJarOf(pool, indexedClass));
+  }
+
+  // Starts resolving, in the background, the PatchSite for the first method
+  // with the given name (and parameters, e.g. "(IZ)", if not null) on the
+  // given class. As with indexJarInBackground, the jar is located immediately
+  // and the background thread reads the class straight from it. Intended to be
+  // called from a mod's constructor, with the result joined in preInit.
+  protected Future<PatchSite> resolveInBackground(
+      ClassPool pool, String className, String methodName, String parameters,
+      SiteResolver resolver) {
+    try {
+      Path jarPath = findJarOf(pool, className);
+
+      return analyzeInBackground(
+        String.format("%s patch site resolver", getClass().getSimpleName()),
+        () -> PatchSite.resolve(
+          jarPath, className, methodName, parameters, resolver));
+    } catch (IOException | NotFoundException e) {
+      // Thrown again when the result is joined
+      FutureTask<PatchSite> failed = new FutureTask<>(() -> { throw e; });
+      failed.run();
+
+      return failed;
+    }
+  }
+
   // Finds the first method with the given name on the given class. Method
-  // parameters are ignored.
+  // parameters are ignored. The method is looked up by descriptor if the call
+  // site index covers the class, and only scanned for by name otherwise.
   private static CtMethod findMatchingMethod(
       CtClass targetClass, String methodName)
       throws NotFoundException {
+    String descriptor = PatchCoordinator.forPool(targetClass.getClassPool())
+      .findDescriptor(targetClass.getName(), methodName);
+
+    if (descriptor != null) {
+      try {
+        CtMethod m = targetClass.getMethod(methodName, descriptor);
+
+        if (m.getDeclaringClass() == targetClass) {
+          return m;
+        }
+      } catch (NotFoundException e) {
+        // Changed since the jar was indexed; fall back to scanning
+      }
+    }
+
     for (CtMethod m : targetClass.getDeclaredMethods()) {
       if (m.getName().equals(methodName)) {
         return m;
@@ -50,6 +173,79 @@ public abstract class BaseMod {
       "Could not find method %s on %s", methodName, targetClass.getName()));
   }
 
+  // Returns the jar that the given class would be loaded from
+  protected static Path findJarOf(ClassPool pool, String className)
+      throws IOException, NotFoundException {
+    URL url = pool.find(className);
+
+    if (url == null) {
+      throw new NotFoundException(className);
+    }
+
+    URLConnection connection = url.openConnection();
+
+    if (!(connection instanceof JarURLConnection)) {
+      throw new NotFoundException(String.format(
+        "%s is not loaded from a jar (%s)", className, url));
+    }
+
+    try {
+      URL jarUrl = ((JarURLConnection) connection).getJarFileURL();
+
+      return Paths.get(jarUrl.toURI());
+    } catch (URISyntaxException e) {
+      throw new IOException(e);
+    }
+  }
+
+  // Memory-maps the jar that the given class would be loaded from, so that
+  // subsequent lookups of classes in it are served from the mapping (unless
+  // another class path already in the pool provides them)
+  protected static void mapJarOf(ClassPool pool, String className)
+      throws IOException, NotFoundException {
+    MappedJarClassPath.install(pool, findJarOf(pool, className));
+  }
+
+  // Directory this mod was loaded from. Mods loaded with
+  // sharedClassLoader=true are defined by the modloader's Javassist Loader,
+  // which gives them a CodeSource without a location, so in that case the mod's
+  // jar is found through the ClassPool it was added to instead.
+  protected Path getModDirectory(ClassPool pool)
+      throws IOException, NotFoundException {
+    CodeSource codeSource = getClass().getProtectionDomain().getCodeSource();
+
+    if (codeSource != null && codeSource.getLocation() != null) {
+      try {
+        return Paths.get(codeSource.getLocation().toURI()).getParent();
+      } catch (URISyntaxException e) {
+        throw new IOException(e);
+      }
+    }
+
+    return findJarOf(pool, getClass().getName()).getParent();
+  }
+
+  // Compares every call site of the given methods against those recorded on
+  // the previous run, logging any that have been added or removed (i.e. by a
+  // server update), then records the current call sites for next time.
+  protected void auditCallSites(
+      ClassPool pool, CallSiteIndex index, String... invokedNames)
+      throws IOException, NotFoundException {
+    Path reportPath = getModDirectory(pool).resolve("callsites.txt");
+    List<String> report = index.report(invokedNames);
+
+    if (Files.exists(reportPath)) {
+      List<String> changes =
+        CallSiteIndex.diff(Files.readAllLines(reportPath, UTF_8), report);
+
+      for (String change : changes) {
+        logger.log(WARNING, String.format("Call site changed: %s", change));
+      }
+    }
+
+    Files.write(reportPath, report, UTF_8);
+  }
+
   private void logStartPatch(String className) {
     logger.log(INFO, String.format("Patching %s", className));
   };
@@ -120,7 +316,12 @@ public abstract class BaseMod {
   protected static List<Integer> searchForInstructions(
       CtMethod method, Searcher searcher)
       throws NotFoundException, BadBytecode {
-    MethodInfo mi = method.getMethodInfo();
+    return searchForInstructions(method.getMethodInfo(), searcher);
+  }
+
+  protected static List<Integer> searchForInstructions(
+      MethodInfo mi, Searcher searcher)
+      throws NotFoundException, BadBytecode {
     ConstPool cp = mi.getConstPool();
     CodeAttribute ca = mi.getCodeAttribute();
     CodeIterator ci = ca.iterator();
@@ -150,10 +351,20 @@ public abstract class BaseMod {
     return searchForInstructions(method, searcher).get(0);
   }
 
+  protected static int searchForInstruction(MethodInfo mi, Searcher searcher)
+      throws NotFoundException, BadBytecode {
+    return searchForInstructions(mi, searcher).get(0);
+  }
+
   protected static int findNearestPreceding(
       CtMethod method, int preceding, Searcher searcher)
       throws NotFoundException, BadBytecode {
-    MethodInfo mi = method.getMethodInfo();
+    return findNearestPreceding(method.getMethodInfo(), preceding, searcher);
+  }
+
+  protected static int findNearestPreceding(
+      MethodInfo mi, int preceding, Searcher searcher)
+      throws NotFoundException, BadBytecode {
     ConstPool cp = mi.getConstPool();
     CodeAttribute ca = mi.getCodeAttribute();
     CodeIterator ci = ca.iterator();
@@ -184,7 +395,12 @@ public abstract class BaseMod {
   protected static int findNearestFollowing(
       CtMethod method, int following, Searcher searcher)
       throws NotFoundException, BadBytecode {
-    MethodInfo mi = method.getMethodInfo();
+    return findNearestFollowing(method.getMethodInfo(), following, searcher);
+  }
+
+  protected static int findNearestFollowing(
+      MethodInfo mi, int following, Searcher searcher)
+      throws NotFoundException, BadBytecode {
     ConstPool cp = mi.getConstPool();
     CodeAttribute ca = mi.getCodeAttribute();
     CodeIterator ci = ca.iterator();
@@ -299,6 +515,91 @@ public abstract class BaseMod {
     logFinishPatch(className);
   }
 
+  // Returns a ClassPatcher that, for each given method name, looks up a
+  // matching method (by name alone - parameters ignored) and runs the patcher
+  // on it
+  protected static ClassPatcher forMethods(
+      MethodPatcher patcher, String... methodNames) {
+    return targetClass -> {
+      for (String methodName : methodNames) {
+        patcher.patch(findMatchingMethod(targetClass, methodName));
+      }
+    };
+  }
+
+  // Returns a ClassPatcher that finds the method for each given site and runs
+  // the patcher on it
+  protected static ClassPatcher forSites(
+      SitePatcher patcher, PatchSite... sites) {
+    return targetClass -> {
+      for (PatchSite site : sites) {
+        patcher.patch(site.findIn(targetClass), site);
+      }
+    };
+  }
+
+  // Declares that this mod will register patches with the shared
+  // PatchCoordinator. Must be called from the mod's constructor, so that
+  // patching waits for this mod's preInit.
+  protected void enlistForPatching(ClassPool pool) {
+    PatchCoordinator.forPool(pool).enlist(getClass().getName());
+  }
+
+  // Registers patchers to be run against the given class, in a single pass
+  // with those registered by any other mods, once every enlisted mod has called
+  // applyPatches.
+  protected void registerPatches(
+      ClassPool pool, String className, ClassPatcher... patchers) {
+    PatchCoordinator.forPool(pool)
+      .register(getClass().getName(), className, patchers);
+  }
+
+  // Declares that this mod rewrites calls to invokedName within the given
+  // method, so conflicts with other mods can be detected before patching. If
+  // the call site index has been started, also checks that the method actually
+  // makes such calls, so a server update that removes them is reported before
+  // anything is patched.
+  protected void claimCallSite(
+      ClassPool pool, String className, String methodName,
+      String invokedName)
+      throws IOException, NotFoundException {
+    if (indexedClass != null) {
+      boolean found = false;
+
+      for (CallSiteIndex.CallSite site :
+          getCallSiteIndex(pool).getCallSites(invokedName)) {
+        if (site.getClassName().equals(className) &&
+            site.getMethodName().equals(methodName)) {
+          found = true;
+          break;
+        }
+      }
+
+      if (!found) {
+        throw new NotFoundException(String.format(
+          "%s.%s does not call %s", className, methodName, invokedName));
+      }
+    }
+
+    PatchCoordinator.forPool(pool)
+      .claim(getClass().getName(), className, methodName, invokedName);
+  }
+
+  // Marks this mod's patches as fully registered. Should be called at the end
+  // of preInit. The last enlisted mod to call this applies the patches
+  // registered by all mods.
+  protected void applyPatches(ClassPool pool)
+      throws BadBytecode, CannotCompileException, NotFoundException {
+    PatchCoordinator.forPool(pool).ready(getClass().getName());
+  }
+
+  // Waits for the background verification of all patched classes, shutting
+  // the server down if any of them would fail to verify when loaded. Should be
+  // called once the server has started; only the first call does anything.
+  protected void verifyPatches(ClassPool pool) {
+    PatchCoordinator.forPool(pool).awaitVerification();
+  }
+
   protected void patchExpressions(
       CtMethod method, String logStartTmpl, String logEndTmpl,
       int expectedPatches, ExpressionPatcher patcher)
@@ -370,6 +671,22 @@ public abstract class BaseMod {
         throws BadBytecode, NotFoundException, CannotCompileException;
   }
 
+  // Like MethodPatcher, but also given the PatchSite resolved for the method
+  @FunctionalInterface
+  protected static interface SitePatcher {
+    public void patch(CtMethod targetMethod, PatchSite site)
+        throws BadBytecode, NotFoundException, CannotCompileException;
+  }
+
+  // Returns the offsets of the instructions to rewrite within the given method,
+  // read from the class as stored in its jar. Runs in the background, so must
+  // not touch any ClassPool.
+  @FunctionalInterface
+  protected static interface SiteResolver {
+    public List<Integer> resolve(MethodInfo method)
+        throws BadBytecode, NotFoundException;
+  }
+
   @FunctionalInterface
   protected static interface ExpressionPatcher {
     public void patch(MethodCall m, WasPatchedCheck check)
@@ -0,0 +1,300 @@
+package so.jscinoz.wurmunlimited.mods.common;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.MethodInfo;
+
+import static java.util.stream.Collectors.toList;
+import static javassist.bytecode.Opcode.INVOKEINTERFACE;
+import static javassist.bytecode.Opcode.INVOKESPECIAL;
+import static javassist.bytecode.Opcode.INVOKESTATIC;
+import static javassist.bytecode.Opcode.INVOKEVIRTUAL;
+
+// Index of every method invocation within a jar, and of the methods declared by
+// each class within it. Classes are read straight from the jar in parallel,
+// looking only at their constant pools and code arrays, so building the index
+// never touches (or freezes) anything in a ClassPool.
+public final class CallSiteIndex {
+  // Invoked method name -> every call site invoking a method with that name
+  private final Map<String, List<CallSite>> callSites;
+
+  // Class name -> method name -> descriptors of all methods with that name, in
+  // declaration order
+  private final Map<String, Map<String, List<String>>> methods;
+
+  private CallSiteIndex(
+      Map<String, List<CallSite>> callSites,
+      Map<String, Map<String, List<String>>> methods) {
+    this.callSites = callSites;
+    this.methods = methods;
+  }
+
+  // Scans every class in the given jar and builds an index of all the call
+  // sites within it
+  public static CallSiteIndex build(Path jarPath) throws IOException {
+    List<ClassScan> scans;
+
+    try (ZipFile jar = new ZipFile(jarPath.toFile())) {
+      List<ZipEntry> entries = jar.stream()
+        .filter(e -> e.getName().endsWith(".class"))
+        .collect(toList());
+
+      scans = entries.parallelStream()
+        .map(e -> scanClass(jar, e))
+        .collect(toList());
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+
+    Map<String, List<CallSite>> callSites = new HashMap<>();
+    Map<String, Map<String, List<String>>> methods = new HashMap<>();
+
+    for (ClassScan scan : scans) {
+      methods.put(scan.className, scan.methods);
+
+      for (CallSite site : scan.callSites) {
+        callSites
+          .computeIfAbsent(site.getInvokedName(), k -> new ArrayList<>())
+          .add(site);
+      }
+    }
+
+    return new CallSiteIndex(callSites, methods);
+  }
+
+  private static ClassScan scanClass(ZipFile jar, ZipEntry entry) {
+    try (InputStream in = jar.getInputStream(entry)) {
+      ClassFile cf = new ClassFile(
+        new DataInputStream(new BufferedInputStream(in)));
+
+      return scanClass(cf);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } catch (BadBytecode e) {
+      throw new UncheckedIOException(new IOException(String.format(
+        "Could not scan %s", entry.getName()), e));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static ClassScan scanClass(ClassFile cf) throws BadBytecode {
+    ConstPool cp = cf.getConstPool();
+    ClassScan scan = new ClassScan(cf.getName());
+
+    for (MethodInfo mi : (List<MethodInfo>) cf.getMethods()) {
+      String methodName = mi.getName();
+      String descriptor = mi.getDescriptor();
+
+      scan.methods
+        .computeIfAbsent(methodName, k -> new ArrayList<>())
+        .add(descriptor);
+
+      CodeAttribute ca = mi.getCodeAttribute();
+
+      if (ca == null) {
+        // Abstract or native
+        continue;
+      }
+
+      CodeIterator ci = ca.iterator();
+
+      while (ci.hasNext()) {
+        int pos = ci.next();
+        int op = ci.byteAt(pos);
+
+        if (op != INVOKEVIRTUAL && op != INVOKESPECIAL &&
+            op != INVOKESTATIC && op != INVOKEINTERFACE) {
+          continue;
+        }
+
+        int index = ci.u16bitAt(pos + 1);
+        String invokedClass;
+        String invokedName;
+        String invokedDescriptor;
+
+        // Since Java 8, INVOKESTATIC and INVOKESPECIAL may also refer to
+        // interface methods, so go by the constant pool tag rather than the
+        // opcode
+        if (cp.getTag(index) == ConstPool.CONST_InterfaceMethodref) {
+          invokedClass = cp.getInterfaceMethodrefClassName(index);
+          invokedName = cp.getInterfaceMethodrefName(index);
+          invokedDescriptor = cp.getInterfaceMethodrefType(index);
+        } else {
+          invokedClass = cp.getMethodrefClassName(index);
+          invokedName = cp.getMethodrefName(index);
+          invokedDescriptor = cp.getMethodrefType(index);
+        }
+
+        scan.callSites.add(new CallSite(
+          scan.className, methodName, descriptor, pos,
+          invokedClass, invokedName, invokedDescriptor));
+      }
+    }
+
+    return scan;
+  }
+
+  // Returns all call sites for methods with the given name, on any class
+  public List<CallSite> getCallSites(String invokedName) {
+    List<CallSite> result = callSites.get(invokedName);
+
+    return result == null
+      ? Collections.emptyList()
+      : Collections.unmodifiableList(result);
+  }
+
+  // Returns the descriptors of all methods with the given name declared by the
+  // given class, in declaration order
+  public List<String> getDescriptors(String className, String methodName) {
+    Map<String, List<String>> classMethods = methods.get(className);
+
+    if (classMethods == null || !classMethods.containsKey(methodName)) {
+      return Collections.emptyList();
+    }
+
+    return Collections.unmodifiableList(classMethods.get(methodName));
+  }
+
+  // Produces a sorted, offset-independent listing of the methods that call the
+  // given methods, and how many times each does so. Offsets are left out as
+  // they shift whenever anything else in the calling method changes, which
+  // would make diffing reports from different server versions useless.
+  public List<String> report(String... invokedNames) {
+    Map<String, Integer> counts = new TreeMap<>();
+
+    for (String invokedName : invokedNames) {
+      for (CallSite site : getCallSites(invokedName)) {
+        String line = String.format(
+          "%s.%s%s -> %s.%s%s",
+          site.getClassName(), site.getMethodName(), site.getDescriptor(),
+          site.getInvokedClass(), site.getInvokedName(),
+          site.getInvokedDescriptor());
+
+        counts.merge(line, 1, Integer::sum);
+      }
+    }
+
+    List<String> result = new ArrayList<>();
+
+    counts.forEach((line, count) -> {
+      result.add(String.format("%s x%d", line, count));
+    });
+
+    return result;
+  }
+
+  // Compares two reports, returning every line that was added (prefixed with
+  // "+") or removed (prefixed with "-")
+  public static List<String> diff(
+      Collection<String> previous, Collection<String> current) {
+    Set<String> before = new HashSet<>(previous);
+    Set<String> after = new HashSet<>(current);
+    List<String> result = new ArrayList<>();
+
+    for (String line : previous) {
+      if (!after.contains(line)) {
+        result.add("- " + line);
+      }
+    }
+
+    for (String line : current) {
+      if (!before.contains(line)) {
+        result.add("+ " + line);
+      }
+    }
+
+    return result;
+  }
+
+  // A single method invocation instruction, and the method containing it
+  public static final class CallSite {
+    private final String className;
+    private final String methodName;
+    private final String descriptor;
+    private final int offset;
+
+    private final String invokedClass;
+    private final String invokedName;
+    private final String invokedDescriptor;
+
+    CallSite(
+        String className, String methodName, String descriptor, int offset,
+        String invokedClass, String invokedName, String invokedDescriptor) {
+      this.className = className;
+      this.methodName = methodName;
+      this.descriptor = descriptor;
+      this.offset = offset;
+      this.invokedClass = invokedClass;
+      this.invokedName = invokedName;
+      this.invokedDescriptor = invokedDescriptor;
+    }
+
+    public String getClassName() {
+      return className;
+    }
+
+    public String getMethodName() {
+      return methodName;
+    }
+
+    public String getDescriptor() {
+      return descriptor;
+    }
+
+    // Bytecode index of the invoke instruction within the calling method
+    public int getOffset() {
+      return offset;
+    }
+
+    public String getInvokedClass() {
+      return invokedClass;
+    }
+
+    public String getInvokedName() {
+      return invokedName;
+    }
+
+    public String getInvokedDescriptor() {
+      return invokedDescriptor;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+        "%s.%s%s@%d -> %s.%s%s", className, methodName, descriptor, offset,
+        invokedClass, invokedName, invokedDescriptor);
+    }
+  }
+
+  // Results of scanning a single class
+  private static final class ClassScan {
+    private final String className;
+    private final Map<String, List<String>> methods = new HashMap<>();
+    private final List<CallSite> callSites = new ArrayList<>();
+
+    private ClassScan(String className) {
+      this.className = className;
+    }
+  }
+}
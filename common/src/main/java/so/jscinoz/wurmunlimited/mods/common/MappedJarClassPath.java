@@ -0,0 +1,436 @@
+package so.jscinoz.wurmunlimited.mods.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javassist.ClassPath;
+import javassist.ClassPool;
+import javassist.NotFoundException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// ClassPath that serves classes from a memory-mapped jar. The jar's central
+// directory is indexed once, up front, into an open-addressing hash table, so
+// finding a class is a hash probe rather than a walk through the zip. Stored
+// entries are served straight from the mapping; deflated entries are inflated
+// on each read, which is rare as the pool caches every class it has read.
+//
+// This is inserted at the front of the pool's class path, but must not shadow
+// class paths other mods put there before it. So when it is installed, every
+// class in the jar is looked up once in the pool as it stands, and any found
+// somewhere other than this jar are marked as shadowed and never served from
+// here. Class paths inserted later go in front of this one anyway, so the
+// decision never needs revisiting.
+//
+// Only plain (non-zip64) jars under 2GB are supported, which the server jar
+// comfortably is.
+public final class MappedJarClassPath implements ClassPath {
+  private static final int EOCD_SIGNATURE = 0x06054b50;
+  private static final int CEN_SIGNATURE = 0x02014b50;
+  private static final int LOC_SIGNATURE = 0x04034b50;
+
+  private static final int EOCD_SIZE = 22;
+  private static final int CEN_SIZE = 46;
+  private static final int LOC_SIZE = 30;
+
+  private static final int METHOD_STORED = 0;
+  private static final int METHOD_DEFLATED = 8;
+
+  // Jars already mapped into each pool
+  private static final Map<ClassPool, Set<Path>> installed =
+    new WeakHashMap<>();
+
+  private final Path jarPath;
+  private final String jarUrl;
+  private final MappedByteBuffer buffer;
+
+  // Open-addressing table of entry index + 1 (0 being an empty slot), probed
+  // linearly
+  private final int[] table;
+  private final int mask;
+
+  // Per entry: hash of its name, and the offset of its central directory
+  // record
+  private final int[] hashes;
+  private final int[] records;
+
+  // Per entry: whether another class path already in the pool provides it
+  private final boolean[] shadowed;
+
+  public MappedJarClassPath(Path jarPath) throws IOException {
+    this.jarPath = jarPath;
+    this.jarUrl = jarPath.toUri().toString();
+
+    try (FileChannel channel =
+        FileChannel.open(jarPath, StandardOpenOption.READ)) {
+      long size = channel.size();
+
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException(String.format("%s is too large", jarPath));
+      }
+
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    int eocd = findEndOfCentralDirectory();
+    int count = u16(eocd + 10);
+    int offset = (int) u32(eocd + 16);
+
+    if (count == 0xffff || offset == -1) {
+      throw new IOException(String.format(
+        "%s is a zip64 archive, which is not supported", jarPath));
+    }
+
+    int tableSize = Integer.highestOneBit(Math.max(count, 1) * 2) * 2;
+
+    table = new int[tableSize];
+    mask = tableSize - 1;
+    hashes = new int[count];
+    records = new int[count];
+    shadowed = new boolean[count];
+
+    for (int i = 0; i < count; i++) {
+      if (buffer.getInt(offset) != CEN_SIGNATURE) {
+        throw new IOException(String.format(
+          "Bad central directory entry in %s", jarPath));
+      }
+
+      int nameLength = u16(offset + 28);
+      int hash = hash(offset + CEN_SIZE, nameLength);
+
+      hashes[i] = hash;
+      records[i] = offset;
+
+      int slot = hash & mask;
+
+      while (table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+
+      table[slot] = i + 1;
+
+      offset += CEN_SIZE + nameLength + u16(offset + 30) + u16(offset + 32);
+    }
+  }
+
+  // Maps the given jar and puts it at the front of the pool's class path,
+  // without shadowing anything already there. Does nothing if the jar has
+  // already been mapped into the pool.
+  public static void install(ClassPool pool, Path jarPath) throws IOException {
+    synchronized (installed) {
+      Set<Path> jars = installed.computeIfAbsent(pool, k -> new HashSet<>());
+
+      if (jars.add(jarPath.toAbsolutePath())) {
+        MappedJarClassPath classPath = new MappedJarClassPath(jarPath);
+
+        classPath.findShadowed(pool);
+        pool.insertClassPath(classPath);
+      }
+    }
+  }
+
+  // Marks every class that the pool, before this is inserted into it, would
+  // find somewhere other than this jar
+  private void findShadowed(ClassPool pool) throws IOException {
+    Path realPath = jarPath.toRealPath();
+
+    // Jar URL prefix -> whether it refers to this jar
+    Map<String, Boolean> jarUrls = new HashMap<>();
+
+    for (int i = 0; i < records.length; i++) {
+      String entryName = entryName(records[i]);
+
+      if (!entryName.endsWith(".class")) {
+        continue;
+      }
+
+      String classname = entryName
+        .substring(0, entryName.length() - ".class".length())
+        .replace('/', '.');
+
+      URL url = pool.find(classname);
+
+      if (url == null) {
+        continue;
+      }
+
+      String spec = url.toString();
+      int separator = spec.indexOf("!/");
+
+      shadowed[i] = !spec.startsWith("jar:") || separator == -1 ||
+        !jarUrls.computeIfAbsent(
+          spec.substring(0, separator), prefix -> isJar(prefix, realPath));
+    }
+  }
+
+  // Whether the given jar: URL prefix refers to the given jar
+  private static boolean isJar(String prefix, Path realPath) {
+    try {
+      return Paths.get(new URI(prefix.substring("jar:".length())))
+        .toRealPath()
+        .equals(realPath);
+    } catch (IOException | URISyntaxException | RuntimeException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public InputStream openClassfile(String classname) throws NotFoundException {
+    String entryName = toEntryName(classname);
+    int record = lookup(entryName);
+
+    if (record == -1) {
+      return null;
+    }
+
+    try {
+      return open(record);
+    } catch (IOException e) {
+      NotFoundException nfe = new NotFoundException(String.format(
+        "Could not read %s from %s", entryName, jarPath));
+      nfe.initCause(e);
+
+      throw nfe;
+    }
+  }
+
+  @Override
+  public URL find(String classname) {
+    String entryName = toEntryName(classname);
+
+    if (lookup(entryName) == -1) {
+      return null;
+    }
+
+    try {
+      return new URL(String.format("jar:%s!/%s", jarUrl, entryName));
+    } catch (MalformedURLException e) {
+      return null;
+    }
+  }
+
+  // The mapping is released when this is garbage collected
+  public void close() {}
+
+  @Override
+  public String toString() {
+    return jarPath.toString();
+  }
+
+  private static String toEntryName(String classname) {
+    return classname.replace('.', '/') + ".class";
+  }
+
+  // Returns the central directory record for the given entry, or -1 if it is
+  // not in the jar or is shadowed
+  private int lookup(String entryName) {
+    byte[] name = entryName.getBytes(UTF_8);
+    int hash = hash(name);
+    int slot = hash & mask;
+
+    for (int i = table[slot]; i != 0; i = table[slot = (slot + 1) & mask]) {
+      int record = records[i - 1];
+
+      if (hashes[i - 1] == hash && nameEquals(record, name)) {
+        return shadowed[i - 1] ? -1 : record;
+      }
+    }
+
+    return -1;
+  }
+
+  private String entryName(int record) {
+    byte[] name = new byte[u16(record + 28)];
+
+    slice(record + CEN_SIZE, name.length).get(name);
+
+    return new String(name, UTF_8);
+  }
+
+  private InputStream open(int record) throws IOException {
+    int method = u16(record + 10);
+    int compressedSize = (int) u32(record + 20);
+    int size = (int) u32(record + 24);
+    int local = (int) u32(record + 42);
+
+    if (buffer.getInt(local) != LOC_SIGNATURE) {
+      throw new IOException("Bad local header");
+    }
+
+    int dataStart = local + LOC_SIZE + u16(local + 26) + u16(local + 28);
+
+    if (method == METHOD_STORED) {
+      return new BufferInputStream(slice(dataStart, size));
+    }
+
+    if (method != METHOD_DEFLATED) {
+      throw new IOException(String.format(
+        "Unsupported compression method %d", method));
+    }
+
+    byte[] bytes = inflate(dataStart, compressedSize, size);
+
+    return new BufferInputStream(ByteBuffer.wrap(bytes));
+  }
+
+  private byte[] inflate(int offset, int compressedSize, int size)
+      throws IOException {
+    // Inflater can only read from arrays until Java 11
+    byte[] input = new byte[compressedSize];
+    slice(offset, compressedSize).get(input);
+
+    byte[] output = new byte[size];
+    Inflater inflater = new Inflater(true);
+
+    try {
+      inflater.setInput(input);
+
+      int read = 0;
+
+      while (read < size && !inflater.finished()) {
+        int n = inflater.inflate(output, read, size - read);
+
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+
+        read += n;
+      }
+
+      if (read != size) {
+        throw new IOException("Truncated entry");
+      }
+
+      return output;
+    } catch (DataFormatException e) {
+      throw new IOException(e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private ByteBuffer slice(int offset, int length) {
+    ByteBuffer view = buffer.duplicate();
+    view.position(offset);
+    view.limit(offset + length);
+
+    return view.slice();
+  }
+
+  private boolean nameEquals(int record, byte[] name) {
+    if (u16(record + 28) != name.length) {
+      return false;
+    }
+
+    int start = record + CEN_SIZE;
+
+    for (int i = 0; i < name.length; i++) {
+      if (buffer.get(start + i) != name[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private int findEndOfCentralDirectory() throws IOException {
+    int limit = buffer.limit();
+    // The record may be followed by a comment of up to 64k
+    int earliest = Math.max(0, limit - EOCD_SIZE - 0xffff);
+
+    for (int pos = limit - EOCD_SIZE; pos >= earliest; pos--) {
+      if (buffer.getInt(pos) == EOCD_SIGNATURE) {
+        return pos;
+      }
+    }
+
+    throw new IOException(String.format("%s is not a valid jar", jarPath));
+  }
+
+  private int hash(int offset, int length) {
+    int h = 0;
+
+    for (int i = 0; i < length; i++) {
+      h = 31 * h + buffer.get(offset + i);
+    }
+
+    return mix(h);
+  }
+
+  private static int hash(byte[] bytes) {
+    int h = 0;
+
+    for (byte b : bytes) {
+      h = 31 * h + b;
+    }
+
+    return mix(h);
+  }
+
+  // Spread the bits, as only the low bits are used to pick a slot
+  private static int mix(int h) {
+    return h ^ (h >>> 16);
+  }
+
+  private int u16(int offset) {
+    return buffer.getShort(offset) & 0xffff;
+  }
+
+  private long u32(int offset) {
+    return buffer.getInt(offset) & 0xffffffffL;
+  }
+
+  // Reads from a ByteBuffer without copying it first
+  private static final class BufferInputStream extends InputStream {
+    private final ByteBuffer source;
+
+    private BufferInputStream(ByteBuffer source) {
+      this.source = source;
+    }
+
+    @Override
+    public int read() {
+      return source.hasRemaining() ? source.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+
+      if (!source.hasRemaining()) {
+        return -1;
+      }
+
+      int n = Math.min(len, source.remaining());
+      source.get(b, off, n);
+
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return source.remaining();
+    }
+  }
+}
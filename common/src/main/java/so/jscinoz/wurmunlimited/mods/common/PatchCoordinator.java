@@ -0,0 +1,278 @@
+package so.jscinoz.wurmunlimited.mods.common;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.NotFoundException;
+import javassist.bytecode.BadBytecode;
+
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.SEVERE;
+
+// Collects the patches every mod wants to make, per class, so that each class
+// is fetched and patched in a single ordered pass with the patches from all
+// mods, rather than once per mod. Mods enlist when they are constructed, then
+// register their patches (and the call sites they intend to rewrite) during
+// preInit, and finally call ready(). Once every enlisted mod is ready,
+// everything registered is applied, after first checking that no two mods have
+// claimed the same call site. As the modloader constructs every mod before
+// calling any preInit, this means patching happens in the last mod's preInit,
+// before any mod's init can cause a server class to be loaded (and frozen).
+//
+// Mods only share a coordinator if they share a class loader, i.e. are loaded
+// with sharedClassLoader=true. Otherwise, each mod effectively gets its own.
+//
+// Each patched class is then verified in the background; mods should call
+// awaitVerification() before players are able to connect. The first call waits
+// for the result, and shuts the server down if anything failed verification;
+// later calls return immediately.
+//
+// The coordinator also holds the call site indexes mods use while registering
+// patches, so that a jar is only indexed once however many mods ask for it.
+// Patchers also find methods by name through them while patches are applied,
+// after which the indexes are released.
+public final class PatchCoordinator {
+  private static final Logger logger =
+    Logger.getLogger(PatchCoordinator.class.getName());
+
+  private static final Map<ClassPool, PatchCoordinator> coordinators =
+    new WeakHashMap<>();
+
+  private final ClassPool pool;
+  private final PatchVerifier verifier = new PatchVerifier();
+
+  // Class name -> patches for that class, in registration order
+  private final Map<String, List<Registration>> patches = new LinkedHashMap<>();
+
+  // Call site -> mods claiming it
+  private final Map<String, Set<String>> claims = new HashMap<>();
+
+  // Mods that have enlisted but are not yet ready
+  private final Set<String> pending = new LinkedHashSet<>();
+
+  // Jar -> index of that jar, built in the background
+  private final Map<Path, Future<CallSiteIndex>> indexes = new HashMap<>();
+  private boolean indexesReleased;
+
+  // Whether awaitVerification has already run
+  private boolean verificationDone;
+
+  private PatchCoordinator(ClassPool pool) {
+    this.pool = pool;
+  }
+
+  public static PatchCoordinator forPool(ClassPool pool) {
+    synchronized (coordinators) {
+      return coordinators.computeIfAbsent(pool, PatchCoordinator::new);
+    }
+  }
+
+  // Records that the given mod will register patches, so they are not applied
+  // until it is ready
+  public synchronized void enlist(String owner) {
+    pending.add(owner);
+  }
+
+  // Records that the given mod has registered all of its patches, and applies
+  // everything registered if it was the last enlisted mod to do so.
+  public synchronized void ready(String owner)
+      throws BadBytecode, CannotCompileException, NotFoundException {
+    pending.remove(owner);
+
+    if (!pending.isEmpty()) {
+      logger.log(INFO, String.format(
+        "Deferring patching until %s are ready", String.join(", ", pending)));
+
+      return;
+    }
+
+    apply();
+  }
+
+  // Registers patchers to be run against the given class when apply() is
+  // called. Patchers for the same class are run in the order they were
+  // registered.
+  public synchronized void register(
+      String owner, String className, BaseMod.ClassPatcher... patchers) {
+    List<Registration> classPatches =
+      patches.computeIfAbsent(className, k -> new ArrayList<>());
+
+    for (BaseMod.ClassPatcher patcher : patchers) {
+      classPatches.add(new Registration(owner, patcher));
+    }
+  }
+
+  // Starts building an index of the given jar in the background, if that has
+  // not already been started
+  public synchronized void startIndexing(Path jarPath) {
+    if (!indexesReleased) {
+      index(jarPath);
+    }
+  }
+
+  // Returns the index of the given jar, building it if needed
+  public CallSiteIndex getIndex(Path jarPath)
+      throws IOException, NotFoundException {
+    Future<CallSiteIndex> index;
+
+    synchronized (this) {
+      if (indexesReleased) {
+        throw new IllegalStateException(
+          "Call site indexes are released once patches are applied");
+      }
+
+      index = index(jarPath);
+    }
+
+    return BaseMod.joinAnalysis(index);
+  }
+
+  // Returns the descriptor of the first method with the given name declared by
+  // the given class, according to whichever finished index covers that class,
+  // or null if none do
+  public synchronized String findDescriptor(
+      String className, String methodName) {
+    for (Future<CallSiteIndex> index : indexes.values()) {
+      if (!index.isDone()) {
+        continue;
+      }
+
+      List<String> descriptors;
+
+      try {
+        descriptors = index.get().getDescriptors(className, methodName);
+      } catch (ExecutionException | InterruptedException e) {
+        // Reported to whichever mod asked for the index
+        continue;
+      }
+
+      if (!descriptors.isEmpty()) {
+        return descriptors.get(0);
+      }
+    }
+
+    return null;
+  }
+
+  private Future<CallSiteIndex> index(Path jarPath) {
+    return indexes.computeIfAbsent(jarPath.toAbsolutePath(), path -> {
+      return BaseMod.analyzeInBackground(
+        String.format("Call site indexer for %s", path.getFileName()),
+        () -> CallSiteIndex.build(path));
+    });
+  }
+
+  // Records that the given mod intends to rewrite calls to invokedName within
+  // the given method. Two different mods claiming the same calls is treated as
+  // a conflict.
+  public synchronized void claim(
+      String owner, String className, String methodName, String invokedName) {
+    String callSite =
+      String.format("%s.%s -> %s", className, methodName, invokedName);
+
+    claims.computeIfAbsent(callSite, k -> new LinkedHashSet<>()).add(owner);
+  }
+
+  // Applies all patches registered so far
+  private void apply()
+      throws BadBytecode, CannotCompileException, NotFoundException {
+    if (verificationDone) {
+      throw new IllegalStateException(
+        "Patches cannot be applied after verification has run");
+    }
+
+    checkConflicts();
+
+    for (Map.Entry<String, List<Registration>> entry : patches.entrySet()) {
+      String className = entry.getKey();
+      List<Registration> classPatches = entry.getValue();
+
+      Set<String> owners = new LinkedHashSet<>();
+
+      for (Registration registration : classPatches) {
+        owners.add(registration.owner);
+      }
+
+      logger.log(INFO, String.format(
+        "Patching %s for %s", className, String.join(", ", owners)));
+
+      CtClass targetClass = pool.get(className);
+
+      for (Registration registration : classPatches) {
+        registration.patcher.patch(targetClass);
+      }
+
+      verifier.submit(targetClass);
+
+      logger.log(INFO, String.format("Successfully patched %s", className));
+    }
+
+    patches.clear();
+    claims.clear();
+
+    // Nothing needs them once patching is done
+    indexes.clear();
+    indexesReleased = true;
+  }
+
+  // Waits for verification of every patched class, the first time it is
+  // called. If any failed, the server is shut down rather than left for the
+  // classes to fail with a VerifyError whenever they are first used.
+  public synchronized void awaitVerification() {
+    if (verificationDone) {
+      return;
+    }
+
+    verificationDone = true;
+
+    List<String> failures = verifier.await();
+
+    if (!failures.isEmpty()) {
+      logger.log(SEVERE, String.format(
+        "%d patched methods failed verification, shutting down",
+        failures.size()));
+
+      System.exit(1);
+    }
+  }
+
+  private void checkConflicts() throws CannotCompileException {
+    List<String> conflicts = new ArrayList<>();
+
+    claims.forEach((callSite, owners) -> {
+      if (owners.size() > 1) {
+        conflicts.add(String.format(
+          "%s (claimed by %s)", callSite, String.join(", ", owners)));
+      }
+    });
+
+    if (!conflicts.isEmpty()) {
+      throw new CannotCompileException(String.format(
+        "Conflicting patches: %s", String.join("; ", conflicts)));
+    }
+  }
+
+  private static final class Registration {
+    private final String owner;
+    private final BaseMod.ClassPatcher patcher;
+
+    private Registration(String owner, BaseMod.ClassPatcher patcher) {
+      this.owner = owner;
+      this.patcher = patcher;
+    }
+  }
+}
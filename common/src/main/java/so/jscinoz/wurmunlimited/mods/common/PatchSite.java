@@ -0,0 +1,108 @@
+package so.jscinoz.wurmunlimited.mods.common;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.NotFoundException;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.MethodInfo;
+
+// A method to be patched, and the offsets of the instructions within it to
+// rewrite. Resolved ahead of time from the class as stored in its jar, without
+// touching any ClassPool, so it can be done in the background while the server
+// starts up. The offsets stay valid only as long as every rewrite of the
+// method leaves its instructions where they are, as ReplacementTemplate does.
+public final class PatchSite {
+  private final String className;
+  private final String methodName;
+  private final String descriptor;
+  private final List<Integer> offsets;
+
+  private PatchSite(
+      String className, String methodName, String descriptor,
+      List<Integer> offsets) {
+    this.className = className;
+    this.methodName = methodName;
+    this.descriptor = descriptor;
+    this.offsets = Collections.unmodifiableList(new ArrayList<>(offsets));
+  }
+
+  // Reads the given class from the given jar, finds the first method with the
+  // given name (and parameters, e.g. "(IZ)", if not null), then runs the
+  // resolver on it
+  @SuppressWarnings("unchecked")
+  static PatchSite resolve(
+      Path jarPath, String className, String methodName, String parameters,
+      BaseMod.SiteResolver resolver)
+      throws BadBytecode, IOException, NotFoundException {
+    ClassFile cf;
+
+    try (ZipFile jar = new ZipFile(jarPath.toFile())) {
+      ZipEntry entry = jar.getEntry(className.replace('.', '/') + ".class");
+
+      if (entry == null) {
+        throw new NotFoundException(String.format(
+          "Could not find %s in %s", className, jarPath));
+      }
+
+      try (InputStream in = jar.getInputStream(entry)) {
+        cf = new ClassFile(
+          new DataInputStream(new BufferedInputStream(in)));
+      }
+    }
+
+    for (MethodInfo mi : (List<MethodInfo>) cf.getMethods()) {
+      if (mi.getName().equals(methodName) &&
+          (parameters == null || mi.getDescriptor().startsWith(parameters))) {
+        return new PatchSite(
+          className, methodName, mi.getDescriptor(), resolver.resolve(mi));
+      }
+    }
+
+    throw new NotFoundException(String.format(
+      "Could not find method %s on %s", methodName, className));
+  }
+
+  public String getClassName() {
+    return className;
+  }
+
+  public String getMethodName() {
+    return methodName;
+  }
+
+  public String getDescriptor() {
+    return descriptor;
+  }
+
+  public List<Integer> getOffsets() {
+    return offsets;
+  }
+
+  // Whether the instruction at the given offset is one to rewrite
+  public boolean contains(int offset) {
+    return offsets.contains(offset);
+  }
+
+  // Finds the method within the given class, as it is about to be patched
+  public CtMethod findIn(CtClass targetClass) throws NotFoundException {
+    return targetClass.getMethod(methodName, descriptor);
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+      "%s.%s%s@%s", className, methodName, descriptor, offsets);
+  }
+}
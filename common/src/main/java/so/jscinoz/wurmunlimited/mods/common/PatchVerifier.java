@@ -0,0 +1,221 @@
+package so.jscinoz.wurmunlimited.mods.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.NotFoundException;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.analysis.Analyzer;
+
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.SEVERE;
+
+// Verifies patched classes on background threads, so that a bad rewrite is
+// caught at startup rather than as a VerifyError whenever the class happens to
+// be loaded, without adding the verification time to the startup path.
+// Each class is snapshotted when submitted, and the snapshot is then run
+// through Javassist's data-flow Analyzer and has its stack map rebuilt.
+//
+// CtClasses are not thread-safe, and the shared ClassPool keeps being patched
+// and read by the Loader while verification runs, so each verifier thread
+// resolves types through a ClassPool of its own. That pool is built from the
+// system class path plus the locations of the submitted classes, which are
+// looked up in the shared pool on the submitting thread.
+final class PatchVerifier {
+  private static final Logger logger =
+    Logger.getLogger(PatchVerifier.class.getName());
+
+  private final ExecutorService executor;
+  private final List<Future<List<String>>> results = new ArrayList<>();
+
+  // Locations of every class submitted so far, for the verifier pools
+  private final List<String> classPaths = new CopyOnWriteArrayList<>();
+
+  private final ThreadLocal<VerifierPool> pools =
+    ThreadLocal.withInitial(VerifierPool::new);
+
+  PatchVerifier() {
+    executor = Executors.newFixedThreadPool(
+      Runtime.getRuntime().availableProcessors(),
+      r -> {
+        Thread thread = new Thread(r, "Patch verifier");
+        thread.setDaemon(true);
+
+        return thread;
+      });
+  }
+
+  // Queues the given class for verification in its current state
+  synchronized void submit(CtClass targetClass)
+      throws CannotCompileException, NotFoundException {
+    if (executor.isShutdown()) {
+      throw new IllegalStateException(
+        "Patched classes cannot be verified after await() has been called");
+    }
+
+    final String className = targetClass.getName();
+    final byte[] snapshot;
+
+    String classPath = findClassPath(targetClass.getClassPool(), className);
+
+    if (!classPaths.contains(classPath)) {
+      classPaths.add(classPath);
+    }
+
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      targetClass.getClassFile().write(new DataOutputStream(bytes));
+      snapshot = bytes.toByteArray();
+    } catch (IOException e) {
+      throw new CannotCompileException(e);
+    }
+
+    results.add(executor.submit(() -> {
+      return verify(pools.get().update(classPaths), className, snapshot);
+    }));
+  }
+
+  // Waits for all submitted classes to be verified, then stops the verifier
+  // threads. Returns a description of every method that failed verification.
+  synchronized List<String> await() {
+    List<String> failures = new ArrayList<>();
+
+    for (Future<List<String>> result : results) {
+      try {
+        failures.addAll(result.get());
+      } catch (ExecutionException e) {
+        failures.add(e.getCause().toString());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failures.add(String.format("Interrupted while verifying: %s", e));
+
+        break;
+      }
+    }
+
+    executor.shutdownNow();
+
+    for (String failure : failures) {
+      logger.log(SEVERE, String.format("Verification failed: %s", failure));
+    }
+
+    if (failures.isEmpty()) {
+      logger.log(INFO, String.format(
+        "Successfully verified %d patched classes", results.size()));
+    }
+
+    return failures;
+  }
+
+  // Returns the jar or directory the given class is found in, as accepted by
+  // ClassPool.appendClassPath
+  private static String findClassPath(ClassPool pool, String className)
+      throws NotFoundException {
+    URL url = pool.find(className);
+
+    if (url == null) {
+      throw new NotFoundException(className);
+    }
+
+    try {
+      URLConnection connection = url.openConnection();
+
+      if (connection instanceof JarURLConnection) {
+        URL jarUrl = ((JarURLConnection) connection).getJarFileURL();
+
+        return Paths.get(jarUrl.toURI()).toString();
+      }
+
+      if (url.getProtocol().equals("file")) {
+        String path = Paths.get(url.toURI()).toString();
+        String suffix = className.replace('.', File.separatorChar) + ".class";
+
+        if (path.endsWith(suffix)) {
+          return path.substring(0, path.length() - suffix.length());
+        }
+      }
+    } catch (IOException | URISyntaxException e) {
+      NotFoundException nfe = new NotFoundException(className);
+      nfe.initCause(e);
+
+      throw nfe;
+    }
+
+    throw new NotFoundException(String.format(
+      "Cannot verify %s as it is not loaded from a jar or directory (%s)",
+      className, url));
+  }
+
+  // Returns a description of every method in the class that failed
+  @SuppressWarnings("unchecked")
+  private static List<String> verify(
+      ClassPool pool, String className, byte[] snapshot)
+      throws IOException, NotFoundException {
+    ClassFile cf = new ClassFile(
+      new DataInputStream(new ByteArrayInputStream(snapshot)));
+
+    // Only used by the Analyzer to resolve types, through this thread's pool
+    CtClass typeClass = pool.get(className);
+
+    List<String> failures = new ArrayList<>();
+
+    for (MethodInfo mi : (List<MethodInfo>) cf.getMethods()) {
+      if (mi.getCodeAttribute() == null) {
+        continue;
+      }
+
+      try {
+        new Analyzer().analyze(typeClass, mi);
+        mi.rebuildStackMapIf6(pool, cf);
+      } catch (BadBytecode | RuntimeException e) {
+        failures.add(String.format(
+          "%s.%s%s: %s", className, mi.getName(), mi.getDescriptor(), e));
+      }
+    }
+
+    return failures;
+  }
+
+  // A ClassPool used by a single verifier thread, and the class paths that
+  // have been added to it
+  private static final class VerifierPool {
+    private final ClassPool pool = new ClassPool(true);
+    private final Set<String> added = new HashSet<>();
+
+    // Adds any class paths not already in the pool
+    private ClassPool update(List<String> classPaths)
+        throws NotFoundException {
+      for (String classPath : classPaths) {
+        if (added.add(classPath)) {
+          pool.appendClassPath(classPath);
+        }
+      }
+
+      return pool;
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package so.jscinoz.wurmunlimited.mods.common;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.CtNewMethod;
+import javassist.Modifier;
+import javassist.NotFoundException;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.Descriptor;
+import javassist.expr.MethodCall;
+
+import static javassist.bytecode.Opcode.ICONST_0;
+import static javassist.bytecode.Opcode.ICONST_1;
+import static javassist.bytecode.Opcode.INVOKEINTERFACE;
+import static javassist.bytecode.Opcode.INVOKESTATIC;
+import static javassist.bytecode.Opcode.INVOKEVIRTUAL;
+import static javassist.bytecode.Opcode.NOP;
+import static javassist.bytecode.Opcode.POP;
+
+// A replacement for method calls that is compiled once per calling class and
+// call signature, rather than once per call site as MethodCall.replace does.
+//
+// The replacement is an expression in terms of the original call's receiver
+// ($1, for non-static calls) and arguments ($2 onwards, or $1 onwards for
+// static calls). It is compiled into a private static helper method on the
+// calling class, and each call site is then rewritten in place to invoke the
+// helper instead. As the helper takes and returns exactly what the original
+// call did, only the invoke instruction's constant pool reference changes;
+// nothing else in the method needs to move.
+//
+// Constant replacements for calls without arguments skip the helper entirely
+// and are written directly over the invoke instruction.
+public final class ReplacementTemplate {
+  private static final AtomicInteger templateCount = new AtomicInteger();
+
+  private final String expression;
+  private final Boolean constant;
+  private final String helperPrefix;
+
+  // calling class + invoke opcode + invoked class + signature -> helper name
+  private final Map<String, String> helpers = new ConcurrentHashMap<>();
+
+  private ReplacementTemplate(String expression, Boolean constant) {
+    this.expression = expression;
+    this.constant = constant;
+    this.helperPrefix = "replacement$" + templateCount.incrementAndGet() + "$";
+  }
+
+  public static ReplacementTemplate of(String expression) {
+    return new ReplacementTemplate(expression, null);
+  }
+
+  public static ReplacementTemplate constant(boolean value) {
+    return new ReplacementTemplate(Boolean.toString(value), value);
+  }
+
+  // Replaces the given call with this template
+  public void apply(MethodCall m)
+      throws CannotCompileException, NotFoundException {
+    // Also marks the class as modified
+    CodeAttribute ca = m.where().getMethodInfo().getCodeAttribute();
+    byte[] code = ca.getCode();
+    int pos = m.indexOfBytecode();
+    int op = code[pos] & 0xff;
+
+    if (op != INVOKEVIRTUAL && op != INVOKEINTERFACE && op != INVOKESTATIC) {
+      throw new CannotCompileException(String.format(
+        "Cannot apply template to %s.%s: unsupported call type",
+        m.getClassName(), m.getMethodName()));
+    }
+
+    int length = op == INVOKEINTERFACE ? 5 : 3;
+    String signature = m.getSignature();
+
+    if (constant != null && signature.equals("()Z")) {
+      int i = pos;
+
+      if (op != INVOKESTATIC) {
+        // Discard the receiver
+        code[i++] = (byte) POP;
+      }
+
+      code[i++] = (byte) (constant ? ICONST_1 : ICONST_0);
+
+      while (i < pos + length) {
+        code[i++] = (byte) NOP;
+      }
+
+      return;
+    }
+
+    CtClass thisClass = m.where().getDeclaringClass();
+    boolean isStatic = op == INVOKESTATIC;
+
+    String helperDescriptor = isStatic
+      ? signature
+      : Descriptor.insertParameter(m.getClassName(), signature);
+
+    String key = String.format(
+      "%s|%d|%s|%s", thisClass.getName(), op, m.getClassName(), signature);
+
+    String helperName = helpers.get(key);
+
+    if (helperName == null) {
+      helperName = helperPrefix + helpers.size();
+      addHelper(thisClass, helperName, helperDescriptor);
+      helpers.put(key, helperName);
+    }
+
+    ConstPool cp = ca.getConstPool();
+    int index = cp.addMethodrefInfo(
+      cp.addClassInfo(thisClass.getName()), helperName, helperDescriptor);
+
+    code[pos] = (byte) INVOKESTATIC;
+    code[pos + 1] = (byte) (index >> 8);
+    code[pos + 2] = (byte) index;
+
+    for (int i = pos + 3; i < pos + length; i++) {
+      code[i] = (byte) NOP;
+    }
+  }
+
+  private void addHelper(CtClass thisClass, String name, String descriptor)
+      throws CannotCompileException, NotFoundException {
+    ClassPool pool = thisClass.getClassPool();
+    CtClass returnType = Descriptor.getReturnType(descriptor, pool);
+
+    String body = returnType == CtClass.voidType
+      ? String.format("{ %s; }", expression)
+      : String.format("{ return (%s); }", expression);
+
+    CtMethod helper = CtNewMethod.make(
+      Modifier.PRIVATE | Modifier.STATIC, returnType, name,
+      Descriptor.getParameterTypes(descriptor, pool), null, body, thisClass);
+
+    thisClass.addMethod(helper);
+  }
+}
@@ -1,6 +1,8 @@
 package so.jscinoz.wurmunlimited.mods.smeltmod;
 
+import java.util.Arrays;
 import java.util.logging.Logger;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javassist.ClassPool;
@@ -13,6 +15,7 @@ import javassist.bytecode.CodeAttribute;
 import javassist.bytecode.CodeIterator;
 import javassist.bytecode.ConstPool;
 import javassist.bytecode.BadBytecode;
+import javassist.bytecode.Descriptor;
 import javassist.expr.ExprEditor;
 import javassist.expr.MethodCall;
 
@@ -20,19 +23,25 @@ import org.gotti.wurmunlimited.modloader.classhooks.HookManager;
 import org.gotti.wurmunlimited.modloader.classhooks.HookException;
 import org.gotti.wurmunlimited.modloader.interfaces.WurmServerMod;
 import org.gotti.wurmunlimited.modloader.interfaces.PreInitable;
+import org.gotti.wurmunlimited.modloader.interfaces.ServerStartedListener;
 
 import so.jscinoz.wurmunlimited.mods.common.BaseMod;
+import so.jscinoz.wurmunlimited.mods.common.PatchSite;
+import so.jscinoz.wurmunlimited.mods.common.ReplacementTemplate;
 
 import static java.util.logging.Level.INFO;
 import static javassist.bytecode.Opcode.SIPUSH;
 import static javassist.bytecode.Opcode.INVOKEVIRTUAL;
 
-public class SmeltMod extends BaseMod implements WurmServerMod, PreInitable {
-  private static final String REPLACEMENT_IS_METAL =
-    "$_ = $0.isKey() || $0.isLock() ? true : $proceed($$);";
+public class SmeltMod extends BaseMod
+    implements WurmServerMod, PreInitable, ServerStartedListener {
+  // $1 is the Item isMetal/isIndestructible is called on
+  private static final ReplacementTemplate REPLACEMENT_IS_METAL =
+    ReplacementTemplate.of("$1.isKey() || $1.isLock() ? true : $1.isMetal()");
 
-  private static final String REPLACEMENT_IS_INDESTRUCTIBLE =
-    "$_ = $0.isKey() || $0.isLock() ? false: $proceed($$);";
+  private static final ReplacementTemplate REPLACEMENT_IS_INDESTRUCTIBLE =
+    ReplacementTemplate.of(
+      "$1.isKey() || $1.isLock() ? false : $1.isIndestructible()");
 
   private static final Searcher SMELT_ACTION_SEARCHER = (ci, cp) -> {
     while (ci.hasNext()) {
@@ -84,111 +93,86 @@ public class SmeltMod extends BaseMod implements WurmServerMod, PreInitable {
     return -1;
   };
 
+  // Parameters of the ItemBehaviour.action and getBehavioursFor overloads that
+  // handle SMELT
+  private static final String ACTION_PARAMETERS = String.format(
+    "(%s%s%s%sSF)",
+    Descriptor.of(Wurm.Class.Action), Descriptor.of(Wurm.Class.Creature),
+    Descriptor.of(Wurm.Class.Item), Descriptor.of(Wurm.Class.Item));
+
+  private static final String GET_BEHAVIOURS_FOR_PARAMETERS = String.format(
+    "(%s%s%s)",
+    Descriptor.of(Wurm.Class.Creature), Descriptor.of(Wurm.Class.Item),
+    Descriptor.of(Wurm.Class.Item));
+
+  // The checks to patch follow the SMELT action in action
+  private static final SiteResolver ACTION_RESOLVER = mi -> {
+    int actionAddPos = searchForInstruction(mi, SMELT_ACTION_SEARCHER);
+
+    return Arrays.asList(
+      findNearestFollowing(mi, actionAddPos, IS_METAL_SEARCHER),
+      findNearestFollowing(mi, actionAddPos, IS_INDESTRUCTIBLE_SEARCHER));
+  };
+
+  // The checks to patch precede the SMELT action in getBehavioursFor
+  private static final SiteResolver GET_BEHAVIOURS_FOR_RESOLVER = mi -> {
+    int actionAddPos = searchForInstruction(mi, SMELT_ACTION_SEARCHER);
+
+    return Arrays.asList(
+      findNearestPreceding(mi, actionAddPos, IS_METAL_SEARCHER),
+      findNearestPreceding(mi, actionAddPos, IS_INDESTRUCTIBLE_SEARCHER));
+  };
+
+  private final Future<PatchSite> actionSite;
+  private final Future<PatchSite> getBehavioursForSite;
+
   public SmeltMod() {
     super(Logger.getLogger(SmeltMod.class.getName()));
+
+    ClassPool pool = HookManager.getInstance().getClassPool();
+
+    enlistForPatching(pool);
+
+    // Index the server jar and find what to patch while the rest of the server
+    // starts up, ready for preInit
+    indexJarInBackground(pool, Wurm.Class.ItemBehaviour);
+
+    actionSite = resolveInBackground(
+      pool, Wurm.Class.ItemBehaviour, Wurm.Method.action, ACTION_PARAMETERS,
+      ACTION_RESOLVER);
+
+    getBehavioursForSite = resolveInBackground(
+      pool, Wurm.Class.ItemBehaviour, Wurm.Method.getBehavioursFor,
+      GET_BEHAVIOURS_FOR_PARAMETERS, GET_BEHAVIOURS_FOR_RESOLVER);
   }
 
-  private final MethodPatcher patchAction = targetMethod -> {
+  // Replaces the isMetal and isIndestructible calls at the given site. The
+  // templates rewrite calls in place, so the site's offsets remain valid
+  // throughout.
+  private void patchMetalChecks(CtMethod targetMethod, PatchSite site)
+      throws CannotCompileException, NotFoundException {
     patchExpressions(
       targetMethod,
       "Patching isMetal and isIndestructible checks from %s",
       "Successfully patched isMetal and isIndestructible checks from %s",
       2,
       (m, check) -> {
-        String methodName = m.getMethodName();
-        int methodPos  = m.indexOfBytecode();
-
-        if (methodName.equals(Wurm.Method.isIndestructible) ||
-            methodName.equals(Wurm.Method.isMetal)) {
-          int actionAddPos =
-            searchForInstruction(targetMethod, SMELT_ACTION_SEARCHER);
-
-          if (methodName.equals(Wurm.Method.isIndestructible)) {
-            int targetPos = findNearestFollowing(
-              targetMethod, actionAddPos, IS_INDESTRUCTIBLE_SEARCHER);
-
-            if (methodPos == targetPos) {
-              m.replace(REPLACEMENT_IS_INDESTRUCTIBLE);
-              check.didPatch();
-            }
-          } else if (methodName.equals(Wurm.Method.isMetal)) {
-            int targetPos = findNearestFollowing(
-              targetMethod, actionAddPos, IS_METAL_SEARCHER);
-
-            if (methodPos == targetPos) {
-              m.replace(REPLACEMENT_IS_METAL);
-              check.didPatch();
-            }
-          }
+        if (!site.contains(m.indexOfBytecode())) {
+          return;
         }
-      }
-    );
-  };
-
-  private final MethodPatcher patchGetBehavioursFor = targetMethod -> {
-    patchExpressions(
-      targetMethod,
-      "Patching isMetal and isIndestructible checks from %s",
-      "Successfully patched isMetal and isIndestructible checks from %s",
-      2,
-      (m, check) -> {
-        int methodPos = m.indexOfBytecode();
 
         String methodName = m.getMethodName();
 
-        if (methodName.equals(Wurm.Method.isIndestructible) ||
-            methodName.equals(Wurm.Method.isMetal)) {
-          final int actionAddPos =
-          searchForInstruction(targetMethod, SMELT_ACTION_SEARCHER);
-
-          if (methodName.equals(Wurm.Method.isIndestructible)) {
-            final int targetPos =
-            findNearestPreceding(
-              targetMethod, actionAddPos, IS_INDESTRUCTIBLE_SEARCHER);
-
-            if (methodPos == targetPos) {
-              m.replace(REPLACEMENT_IS_INDESTRUCTIBLE);
-              check.didPatch();
-            }
-          } else if (methodName.equals(Wurm.Method.isMetal)) {
-            final int targetPos =
-            findNearestPreceding(
-              targetMethod, actionAddPos, IS_METAL_SEARCHER);
-
-            if (methodPos == targetPos) {
-              m.replace(REPLACEMENT_IS_METAL);
-              check.didPatch();
-            }
-          }
+        if (methodName.equals(Wurm.Method.isIndestructible)) {
+          REPLACEMENT_IS_INDESTRUCTIBLE.apply(m);
+          check.didPatch();
+        } else if (methodName.equals(Wurm.Method.isMetal)) {
+          REPLACEMENT_IS_METAL.apply(m);
+          check.didPatch();
         }
       }
     );
-  };
-
-  private final ClassPatcher patchItemBehaviour = targetClass -> {
-    ClassPool pool = targetClass.getClassPool();
-
-    patchMethod(
-      targetClass.getDeclaredMethod(Wurm.Method.action, new CtClass[] {
-        pool.get(Wurm.Class.Action),
-        pool.get(Wurm.Class.Creature),
-        pool.get(Wurm.Class.Item),
-        pool.get(Wurm.Class.Item),
-        CtClass.shortType,
-        CtClass.floatType,
-      }),
-      patchAction
-    );
-
-    patchMethod(
-      targetClass.getDeclaredMethod(Wurm.Method.getBehavioursFor, new CtClass[] {
-        pool.get(Wurm.Class.Creature),
-        pool.get(Wurm.Class.Item),
-        pool.get(Wurm.Class.Item),
-      }),
-      patchGetBehavioursFor
-    );
-  };
+  }
 
   public void preInit() {
     ClassPool pool = HookManager.getInstance().getClassPool();
@@ -196,7 +180,30 @@ public class SmeltMod extends BaseMod implements WurmServerMod, PreInitable {
     try {
       logger.log(INFO, "Enabling key/lock smelting");
 
-      patchClass(pool, Wurm.Class.ItemBehaviour, patchItemBehaviour);
+      mapJarOf(pool, Wurm.Class.ItemBehaviour);
+
+      auditCallSites(
+        pool, getCallSiteIndex(pool),
+        Wurm.Method.isMetal, Wurm.Method.isIndestructible);
+
+      for (String methodName : new String[] {
+          Wurm.Method.action, Wurm.Method.getBehavioursFor }) {
+        claimCallSite(
+          pool, Wurm.Class.ItemBehaviour, methodName, Wurm.Method.isMetal);
+        claimCallSite(
+          pool, Wurm.Class.ItemBehaviour, methodName,
+          Wurm.Method.isIndestructible);
+      }
+
+      registerPatches(
+        pool, Wurm.Class.ItemBehaviour,
+        forSites(
+          this::patchMetalChecks,
+          joinAnalysis(actionSite), joinAnalysis(getBehavioursForSite)));
+
+      // Patches are applied here if this is the last mod to get this far,
+      // otherwise in the preInit of whichever mod is
+      applyPatches(pool);
 
       logger.log(INFO, "Successfully enabled key/lock smelting");
     } catch (Exception e) {
@@ -204,4 +211,8 @@ public class SmeltMod extends BaseMod implements WurmServerMod, PreInitable {
       throw new HookException(e);
     }
   }
+
+  public void onServerStarted() {
+    verifyPatches(HookManager.getInstance().getClassPool());
+  }
 }